@@ -0,0 +1,110 @@
+package ca.concordia.benchmark;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares disk bytes and write/read time with per-block compression on and
+ * off, for a log-like text file, across several block sizes.
+ */
+public class CompressionBenchmark {
+
+    private static final int[] BLOCK_SIZES = {128, 256, 512, 1024, 4096};
+    private static final int FILE_SIZE = 30000;
+    private static final int ROUNDS = 100;
+
+    public static void main(String[] args) throws Exception {
+        byte[] contents = buildContents();
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Result[][] results = new Result[BLOCK_SIZES.length][];
+        try {
+            // Warm-up pass so the first block size is not charged for JIT compilation.
+            for (int blockSize : BLOCK_SIZES) {
+                run(contents, blockSize, false);
+                run(contents, blockSize, true);
+            }
+
+            for (int i = 0; i < BLOCK_SIZES.length; i++) {
+                results[i] = new Result[]{
+                        run(contents, BLOCK_SIZES[i], false),
+                        run(contents, BLOCK_SIZES[i], true)
+                };
+            }
+        } finally {
+            System.setOut(console);
+        }
+
+        System.out.println("Text file of " + FILE_SIZE + " bytes, " + ROUNDS + " rounds");
+        System.out.println("block  compression  disk bytes  write us  read us");
+        for (int i = 0; i < BLOCK_SIZES.length; i++) {
+            results[i][0].print(BLOCK_SIZES[i], "off");
+            results[i][1].print(BLOCK_SIZES[i], "on ");
+        }
+    }
+
+    private static byte[] buildContents() {
+        String[] levels = {"INFO", "INFO", "INFO", "WARN", "ERROR"};
+        String[] paths = {"/files/report", "/files/notes", "/list", "/files/image"};
+        Random random = new Random(7);
+
+        StringBuilder text = new StringBuilder();
+        int second = 0;
+        while (text.length() < FILE_SIZE) {
+            second += random.nextInt(3);
+            text.append(String.format("2026-10-18 12:%02d:%02d %-5s client=%d path=%s status=%d%n",
+                    (second / 60) % 60, second % 60, levels[random.nextInt(levels.length)],
+                    random.nextInt(50), paths[random.nextInt(paths.length)],
+                    random.nextInt(10) == 0 ? 404 : 200));
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), FILE_SIZE);
+    }
+
+    private static Result run(byte[] contents, int blockSize, boolean compression) throws Exception {
+        File image = File.createTempFile("compression-bench", ".bin");
+        image.deleteOnExit();
+        int totalBlocks = FILE_SIZE / blockSize + 2;
+        FileSystemManager fs = new FileSystemManager(image.getPath(), totalBlocks * blockSize, blockSize);
+        fs.setCompression(compression);
+
+        Result result = new Result();
+        for (int round = 0; round < ROUNDS; round++) {
+            fs.createFile("log");
+
+            long start = System.nanoTime();
+            fs.writeFile("log", contents);
+            result.writeNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            byte[] readBack = fs.readFile("log");
+            result.readNanos += System.nanoTime() - start;
+
+            if (!Arrays.equals(readBack, contents)) {
+                throw new IllegalStateException("read back different contents");
+            }
+            result.storedBytes = fs.getStoredByteCount();
+
+            fs.deleteFile("log");
+        }
+        return result;
+    }
+
+    private static class Result {
+        long writeNanos;
+        long readNanos;
+        long storedBytes;
+
+        void print(int blockSize, String compression) {
+            System.out.printf("%5d  %-11s  %10d  %8.1f  %7.1f%n", blockSize, compression, storedBytes,
+                    writeNanos / 1000.0 / ROUNDS, readNanos / 1000.0 / ROUNDS);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ca.concordia.benchmark;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures write throughput with block deduplication on and off for a set of
+ * files that share most of their contents.
+ */
+public class DedupBenchmark {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final int FILE_COUNT = 5;
+    private static final int FILE_SIZE = 20000;
+    private static final int TOTAL_BLOCKS = FILE_COUNT * (FILE_SIZE / BLOCK_SIZE + 2) + 1;
+    private static final int ROUNDS = 100;
+
+    public static void main(String[] args) throws Exception {
+        byte[][] contents = buildContents();
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Result off;
+        Result on;
+        try {
+            off = run(contents, false);
+            on = run(contents, true);
+        } finally {
+            System.setOut(console);
+        }
+
+        long totalBytes = (long) FILE_COUNT * FILE_SIZE * ROUNDS;
+        System.out.println(FILE_COUNT + " files x " + FILE_SIZE + " bytes, " + ROUNDS + " rounds");
+        off.print("dedup off", totalBytes);
+        on.print("dedup on ", totalBytes);
+    }
+
+    // Every file is the same random text with a different stamp near the start.
+    private static byte[][] buildContents() {
+        Random random = new Random(42);
+        byte[] base = new byte[FILE_SIZE];
+        for (int i = 0; i < base.length; i++) {
+            base[i] = (byte) ('a' + random.nextInt(26));
+        }
+
+        byte[][] contents = new byte[FILE_COUNT][];
+        for (int f = 0; f < FILE_COUNT; f++) {
+            contents[f] = base.clone();
+            byte[] stamp = ("file-" + f).getBytes();
+            System.arraycopy(stamp, 0, contents[f], 10, stamp.length);
+        }
+        return contents;
+    }
+
+    private static Result run(byte[][] contents, boolean deduplication) throws Exception {
+        File image = File.createTempFile("dedup-bench", ".bin");
+        image.deleteOnExit();
+        FileSystemManager fs = new FileSystemManager(image.getPath(), TOTAL_BLOCKS * BLOCK_SIZE);
+        fs.setDeduplication(deduplication);
+
+        Result result = new Result();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int f = 0; f < FILE_COUNT; f++) {
+                fs.createFile("f" + f);
+            }
+
+            long start = System.nanoTime();
+            for (int f = 0; f < FILE_COUNT; f++) {
+                fs.writeFile("f" + f, contents[f]);
+            }
+            result.nanos += System.nanoTime() - start;
+            result.usedBlocks = fs.getUsedBlockCount();
+            result.dedupRatio = fs.getDedupRatio();
+
+            for (int f = 0; f < FILE_COUNT; f++) {
+                if (!Arrays.equals(fs.readFile("f" + f), contents[f])) {
+                    throw new IllegalStateException("f" + f + " read back different contents");
+                }
+                fs.deleteFile("f" + f);
+            }
+        }
+        return result;
+    }
+
+    private static class Result {
+        long nanos;
+        int usedBlocks;
+        double dedupRatio;
+
+        void print(String label, long totalBytes) {
+            double seconds = nanos / 1e9;
+            System.out.printf("%s: %4d blocks used, dedup ratio %.2f, %7.2f MB/s%n",
+                    label, usedBlocks, dedupRatio, totalBytes / seconds / (1024 * 1024));
+        }
+    }
+}
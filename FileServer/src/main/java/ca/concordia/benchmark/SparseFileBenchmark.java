@@ -0,0 +1,89 @@
+package ca.concordia.benchmark;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Compares creating a large, mostly-empty file by writing explicit zeros
+ * against writing only the tail at an offset past EOF (leaving a hole).
+ */
+public class SparseFileBenchmark {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final int TOTAL_BLOCKS = 256;
+    private static final int FILE_SIZE = 30000;
+    private static final int ROUNDS = 200;
+
+    public static void main(String[] args) throws Exception {
+        byte[] tail = "end-of-file marker".getBytes();
+        int tailOffset = FILE_SIZE - tail.length;
+
+        // The manager logs every operation; keep that out of the timings.
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        long denseNanos = 0;
+        long sparseNanos = 0;
+        int denseBlocks = 0;
+        int sparseBlocks = 0;
+        int denseFNodes = 0;
+        int sparseFNodes = 0;
+        int otherFileSize = 0;
+
+        FileSystemManager dense = newFileSystem();
+        FileSystemManager sparse = newFileSystem();
+
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                dense.createFile("big");
+                byte[] contents = new byte[FILE_SIZE];
+                System.arraycopy(tail, 0, contents, tailOffset, tail.length);
+                long start = System.nanoTime();
+                dense.write("big", contents, 0);
+                denseNanos += System.nanoTime() - start;
+                denseBlocks = dense.getUsedBlockCount();
+                denseFNodes = dense.getUsedFNodeCount();
+
+                sparse.createFile("big");
+                start = System.nanoTime();
+                sparse.write("big", tail, tailOffset);
+                sparseNanos += System.nanoTime() - start;
+                sparseBlocks = sparse.getUsedBlockCount();
+                sparseFNodes = sparse.getUsedFNodeCount();
+
+                if (!Arrays.equals(dense.readFile("big"), sparse.readFile("big"))) {
+                    throw new IllegalStateException("dense and sparse files differ");
+                }
+
+                // Every block the hole did not use must still be writable by another file.
+                otherFileSize = (TOTAL_BLOCKS - 1 - sparseBlocks) * BLOCK_SIZE;
+                sparse.createFile("other");
+                sparse.write("other", new byte[otherFileSize], 0);
+
+                dense.deleteFile("big");
+                sparse.deleteFile("big");
+                sparse.deleteFile("other");
+            }
+        } finally {
+            System.setOut(console);
+        }
+
+        System.out.println("File size: " + FILE_SIZE + " bytes, " + ROUNDS + " rounds");
+        System.out.printf("dense : %4d blocks (%6d bytes), %4d FNodes, %8.1f us/file%n",
+                denseBlocks, denseBlocks * BLOCK_SIZE, denseFNodes, denseNanos / 1000.0 / ROUNDS);
+        System.out.printf("sparse: %4d blocks (%6d bytes), %4d FNodes, %8.1f us/file%n",
+                sparseBlocks, sparseBlocks * BLOCK_SIZE, sparseFNodes, sparseNanos / 1000.0 / ROUNDS);
+        System.out.println("Next to the sparse file, another file of " + otherFileSize +
+                " bytes fit in the remaining blocks");
+    }
+
+    private static FileSystemManager newFileSystem() throws Exception {
+        File image = File.createTempFile("sparse-bench", ".bin");
+        image.deleteOnExit();
+        return new FileSystemManager(image.getPath(), TOTAL_BLOCKS * BLOCK_SIZE);
+    }
+}
@@ -1,31 +1,82 @@
 package ca.concordia.filesystem;
 
+import ca.concordia.filesystem.compression.Lz4Codec;
 import ca.concordia.filesystem.datastructures.FEntry;
 import ca.concordia.filesystem.datastructures.FNode;
 
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class FileSystemManager {
 
     private final int MAXFILES = 5;
-    private final int MAXBLOCKS = 10;
+    private final int MAXBLOCKS;
 
     private RandomAccessFile disk;
 
    
     private static final int FIRST_DATA_BLOCK_INDEX = 1;
-    private static final int BLOCK_SIZE = 128; 
+    private static final int DEFAULT_BLOCK_SIZE = 128;
+    private final int BLOCK_SIZE;
 
     
     private FEntry[] fentryTable;
     private FNode[] fnodeTable;
     private boolean[] freeBlockList;
 
+    // Freed blocks keep their old bytes; reads never go past a file's size, so stale
+    // data is not visible. Blocks are only zeroed when scrubbing is enabled.
+    private boolean scrubFreedBlocks = false;
+    private boolean[] scrubPending;
+
+    // Every allocated block is reference counted; only deduplication shares blocks.
+    private int[] blockRefCount;
+
+    // With deduplication on, identical block images are stored once. Fingerprints are
+    // only a fast filter: a match is confirmed by comparing the stored block bytes.
+    private boolean deduplication = false;
+    private Map<Long, List<Integer>> fingerprintIndex = new HashMap<>();
+    private long[] blockFingerprint;
+    private boolean[] blockIndexed;
+
+    // With compression on, block images are stored LZ4-compressed when that makes
+    // them smaller. blockStoredSize is the number of bytes on disk for each block;
+    // anything below BLOCK_SIZE means the block is compressed.
+    private boolean compression = false;
+    private int[] blockStoredSize;
+
+    // While a batch is open, metadata commits are deferred until commitBatch(), and
+    // everything the batch changes can be undone by rollbackBatch().
+    private boolean batchOpen = false;
+    private boolean metadataDirty = false;
+    private BatchSnapshot batchSnapshot;
+
     public FileSystemManager(String filename, int totalSize) throws Exception {
+        this(filename, totalSize, DEFAULT_BLOCK_SIZE);
+    }
+
+    public FileSystemManager(String filename, int totalSize, int blockSize) throws Exception {
+        if (blockSize <= 0) {
+            throw new Exception("ERROR: block size must be positive");
+        }
+        this.BLOCK_SIZE = blockSize;
+        if (totalSize < 2 * BLOCK_SIZE) {
+            throw new Exception("ERROR: totalSize must hold at least two blocks");
+        }
+        this.MAXBLOCKS = totalSize / BLOCK_SIZE;
         
         this.fentryTable = new FEntry[MAXFILES];
         this.fnodeTable = new FNode[MAXBLOCKS];
         this.freeBlockList = new boolean[MAXBLOCKS];
+        this.scrubPending = new boolean[MAXBLOCKS];
+        this.blockRefCount = new int[MAXBLOCKS];
+        this.blockFingerprint = new long[MAXBLOCKS];
+        this.blockIndexed = new boolean[MAXBLOCKS];
+        this.blockStoredSize = new int[MAXBLOCKS];
 
         for (int i = 0; i < MAXBLOCKS; i++) {
             this.fnodeTable[i] = new FNode(); 
@@ -56,21 +107,484 @@ public class FileSystemManager {
         for (int i = FIRST_DATA_BLOCK_INDEX; i < MAXBLOCKS; i++) {
             if (!freeBlockList[i]) {
                 freeBlockList[i] = true; 
+                scrubPending[i] = false;
+                blockRefCount[i] = 1;
+                blockStoredSize[i] = BLOCK_SIZE;
                 return i;
             }
         }
         return -1;
     }
 
+    private void releaseDataBlock(int dataBlockIndex) {
+        if (dataBlockIndex < FIRST_DATA_BLOCK_INDEX || dataBlockIndex >= MAXBLOCKS) {
+            return;
+        }
+        if (--blockRefCount[dataBlockIndex] > 0) {
+            return;
+        }
+        unindexBlock(dataBlockIndex);
+        freeBlockList[dataBlockIndex] = false;
+        scrubPending[dataBlockIndex] = scrubFreedBlocks;
+    }
+
+    private boolean isCompressed(int dataBlockIndex) {
+        return blockStoredSize[dataBlockIndex] < BLOCK_SIZE;
+    }
+
+    // In-place partial writes are only safe for raw blocks owned by a single file.
+    private boolean needsBlockImage(int dataBlockIndex) {
+        return deduplication || compression || dataBlockIndex == FNode.HOLE
+                || blockRefCount[dataBlockIndex] > 1 || isCompressed(dataBlockIndex);
+    }
+
+    private byte[] readBlockImage(int dataBlockIndex) throws Exception {
+        if (dataBlockIndex == FNode.HOLE) {
+            return new byte[BLOCK_SIZE];
+        }
+
+        disk.seek(getDiskBlockOffset(dataBlockIndex));
+        if (isCompressed(dataBlockIndex)) {
+            byte[] stored = new byte[blockStoredSize[dataBlockIndex]];
+            disk.readFully(stored);
+            return Lz4Codec.decompress(stored, stored.length, BLOCK_SIZE);
+        }
+
+        byte[] blockImage = new byte[BLOCK_SIZE];
+        disk.readFully(blockImage);
+        return blockImage;
+    }
+
+    private void writeBlockImage(int dataBlockIndex, byte[] blockImage) throws Exception {
+        byte[] stored = blockImage;
+        if (compression) {
+            byte[] compressed = Lz4Codec.compress(blockImage);
+            if (compressed.length < BLOCK_SIZE) {
+                stored = compressed;
+            }
+        }
+
+        saveBlockForRollback(dataBlockIndex);
+        disk.seek(getDiskBlockOffset(dataBlockIndex));
+        disk.write(stored);
+        blockStoredSize[dataBlockIndex] = stored.length;
+    }
+
+    // Stores a full block image in place of oldBlockIndex (a block or FNode.HOLE) and
+    // returns the block that now holds it. Shared blocks are never modified in place.
+    private int storeBlockImage(byte[] blockImage, int oldBlockIndex) throws Exception {
+        long fingerprint = 0;
+        if (deduplication) {
+            fingerprint = fingerprint(blockImage);
+            int duplicate = findDuplicateBlock(fingerprint, blockImage);
+            if (duplicate != -1) {
+                if (duplicate != oldBlockIndex) {
+                    blockRefCount[duplicate]++;
+                    releaseDataBlock(oldBlockIndex);
+                }
+                return duplicate;
+            }
+        }
+
+        int target;
+        if (oldBlockIndex != FNode.HOLE && blockRefCount[oldBlockIndex] == 1) {
+            unindexBlock(oldBlockIndex);
+            target = oldBlockIndex;
+        } else {
+            // Copy-on-write for shared blocks; a hole gets its first block.
+            target = findFreeDataBlock();
+            if (target == -1) {
+                throw new Exception("ERROR: file too large (no free blocks)");
+            }
+            releaseDataBlock(oldBlockIndex);
+        }
+
+        // Always written whole, so a reused block never keeps stale bytes.
+        writeBlockImage(target, blockImage);
+
+        if (deduplication) {
+            indexBlock(target, fingerprint);
+        }
+        return target;
+    }
+
+    private int findDuplicateBlock(long fingerprint, byte[] blockImage) throws Exception {
+        List<Integer> candidates = fingerprintIndex.get(fingerprint);
+        if (candidates == null) {
+            return -1;
+        }
+        for (int candidate : candidates) {
+            if (Arrays.equals(readBlockImage(candidate), blockImage)) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private void indexBlock(int dataBlockIndex, long fingerprint) {
+        fingerprintIndex.computeIfAbsent(fingerprint, k -> new ArrayList<>()).add(dataBlockIndex);
+        blockFingerprint[dataBlockIndex] = fingerprint;
+        blockIndexed[dataBlockIndex] = true;
+    }
+
+    private void unindexBlock(int dataBlockIndex) {
+        if (!blockIndexed[dataBlockIndex]) {
+            return;
+        }
+        long fingerprint = blockFingerprint[dataBlockIndex];
+        List<Integer> candidates = fingerprintIndex.get(fingerprint);
+        candidates.remove(Integer.valueOf(dataBlockIndex));
+        if (candidates.isEmpty()) {
+            fingerprintIndex.remove(fingerprint);
+        }
+        blockIndexed[dataBlockIndex] = false;
+    }
+
+    // 64-bit FNV-1a.
+    private static long fingerprint(byte[] blockImage) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : blockImage) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
     private int findFreeFNode() {
         for (int i = 0; i < fnodeTable.length; i++) {
-            if (fnodeTable[i].getBlockIndex() < 0) {
+            if (fnodeTable[i].getBlockIndex() == -1) {
                 return i;
             }
         }
         return -1;
     }
 
+    private int countFreeFNodes() {
+        int free = 0;
+        for (FNode node : fnodeTable) {
+            if (node.getBlockIndex() == -1) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    private int countFreeDataBlocks() {
+        return MAXBLOCKS - FIRST_DATA_BLOCK_INDEX - getUsedBlockCount();
+    }
+
+    // Fails before anything is changed if a write could run out of FNodes or blocks.
+    // Every hole or shared block in the written range counts as one new block; if
+    // that is more than is free and deduplication is on, blocks the write would share
+    // are taken off again. FNodes are counted for the splits of hole runs that the
+    // write will make.
+    private void checkWriteCapacity(FEntry fileEntry, int offset, byte[] data) throws Exception {
+        int length = data.length;
+        int firstSlot = offset / BLOCK_SIZE;
+        int lastSlot = (offset + length - 1) / BLOCK_SIZE;
+        int filesize = fileEntry.getFilesize();
+        // Extending past EOF rewrites the old last block, which is a copy if shared.
+        int tailSlot = (offset > filesize && filesize % BLOCK_SIZE != 0) ? filesize / BLOCK_SIZE : -1;
+
+        int fnodesNeeded = 0;
+        int blocksNeeded = 0;
+        int runStart = 0;
+        int currentFNodeIndex = fileEntry.getFirstBlock();
+        while (currentFNodeIndex != -1) {
+            FNode node = fnodeTable[currentFNodeIndex];
+            int span = node.getSpan();
+            int dataBlockIndex = node.getBlockIndex();
+            currentFNodeIndex = node.getNext();
+
+            if (dataBlockIndex == FNode.HOLE) {
+                // A trailing hole run is grown to cover the write (see extendChain).
+                if (currentFNodeIndex == -1) {
+                    span = Math.max(span, lastSlot + 1 - runStart);
+                }
+                int written = countSlotsWritten(runStart, span, firstSlot, lastSlot);
+                blocksNeeded += written;
+                fnodesNeeded += holeRunSplits(runStart, span, firstSlot, lastSlot, written);
+            } else if (blockRefCount[dataBlockIndex] > 1
+                    && ((runStart >= firstSlot && runStart <= lastSlot) || runStart == tailSlot)) {
+                blocksNeeded++;
+            }
+            runStart += span;
+        }
+
+        // The chain ends in a data block: the write appends a new hole run.
+        if (runStart <= lastSlot) {
+            int span = lastSlot + 1 - runStart;
+            int written = countSlotsWritten(runStart, span, firstSlot, lastSlot);
+            blocksNeeded += written;
+            fnodesNeeded += 1 + holeRunSplits(runStart, span, firstSlot, lastSlot, written);
+        }
+
+        if (fnodesNeeded > countFreeFNodes()) {
+            throw new Exception("ERROR: file too large (no free FNode)");
+        }
+        if (blocksNeeded > countFreeDataBlocks() && deduplication) {
+            blocksNeeded -= countSharedSlots(fileEntry, offset, data, tailSlot);
+        }
+        if (blocksNeeded > countFreeDataBlocks()) {
+            throw new Exception("ERROR: file too large (no free blocks)");
+        }
+    }
+
+    // Counts the fully written slots that checkWriteCapacity charged a new block for
+    // but that deduplication will point at an existing block instead: either a block
+    // already on disk, or one allocated earlier in the same write. Blocks the write
+    // itself may release are not counted on.
+    private int countSharedSlots(FEntry fileEntry, int offset, byte[] data, int tailSlot) throws Exception {
+        int firstSlot = offset / BLOCK_SIZE;
+        int lastSlot = (offset + data.length - 1) / BLOCK_SIZE;
+
+        int[] slotBlocks = new int[lastSlot - firstSlot + 1];
+        Arrays.fill(slotBlocks, FNode.HOLE);
+        List<Integer> releasableBlocks = new ArrayList<>();
+        int runStart = 0;
+        int currentFNodeIndex = fileEntry.getFirstBlock();
+        while (currentFNodeIndex != -1 && runStart <= lastSlot) {
+            FNode node = fnodeTable[currentFNodeIndex];
+            int dataBlockIndex = node.getBlockIndex();
+            if (dataBlockIndex != FNode.HOLE) {
+                if (runStart >= firstSlot) {
+                    slotBlocks[runStart - firstSlot] = dataBlockIndex;
+                }
+                if (runStart >= firstSlot || runStart == tailSlot) {
+                    releasableBlocks.add(dataBlockIndex);
+                }
+            }
+            runStart += node.getSpan();
+            currentFNodeIndex = node.getNext();
+        }
+
+        int sharedSlots = 0;
+        Map<Long, byte[]> newImages = new HashMap<>();
+        for (int slot = firstSlot; slot <= lastSlot; slot++) {
+            int dataStart = slot * BLOCK_SIZE - offset;
+            int dataBlockIndex = slotBlocks[slot - firstSlot];
+            if (dataStart < 0 || dataStart + BLOCK_SIZE > data.length
+                    || (dataBlockIndex != FNode.HOLE && blockRefCount[dataBlockIndex] <= 1)) {
+                continue;
+            }
+
+            byte[] blockImage = Arrays.copyOfRange(data, dataStart, dataStart + BLOCK_SIZE);
+            long fingerprint = fingerprint(blockImage);
+            int duplicate = findDuplicateBlock(fingerprint, blockImage);
+            if ((duplicate != -1 && !releasableBlocks.contains(duplicate))
+                    || Arrays.equals(newImages.get(fingerprint), blockImage)) {
+                sharedSlots++;
+            } else {
+                newImages.putIfAbsent(fingerprint, blockImage);
+            }
+        }
+        return sharedSlots;
+    }
+
+    private static int countSlotsWritten(int runStart, int span, int firstSlot, int lastSlot) {
+        return Math.max(0, Math.min(runStart + span - 1, lastSlot) - Math.max(runStart, firstSlot) + 1);
+    }
+
+    // New FNodes needed when the written slots are split out of a hole run: one per
+    // written slot beyond the first (which reuses the run's node), plus one for each
+    // unwritten remainder before and after them.
+    private static int holeRunSplits(int runStart, int span, int firstSlot, int lastSlot, int written) {
+        if (written == 0) {
+            return 0;
+        }
+        return written - 1
+                + (firstSlot > runStart ? 1 : 0)
+                + (lastSlot < runStart + span - 1 ? 1 : 0);
+    }
+
+    // Releases every block and FNode after the block holding the file's last byte.
+    // Nothing there is readable; this clears what a failed write may have left behind
+    // before the file is extended over it.
+    private void trimPastEof(FEntry fileEntry) {
+        int keepSlots = (fileEntry.getFilesize() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int headFNodeIndex = fileEntry.getFirstBlock();
+        int lastKeptFNodeIndex = headFNodeIndex;
+        int currentFNodeIndex = headFNodeIndex;
+        int runStart = 0;
+
+        while (currentFNodeIndex != -1) {
+            FNode node = fnodeTable[currentFNodeIndex];
+            int nextFNodeIndex = node.getNext();
+            int span = node.getSpan();
+
+            if (runStart < keepSlots) {
+                lastKeptFNodeIndex = currentFNodeIndex;
+                if (runStart + span > keepSlots) {
+                    node.setSpan(keepSlots - runStart);
+                }
+            } else {
+                releaseDataBlock(node.getBlockIndex());
+                // The head node stays with the file as an empty hole.
+                node.setBlockIndex(currentFNodeIndex == headFNodeIndex ? FNode.HOLE : -1);
+                node.setSpan(1);
+                node.setNext(-1);
+            }
+            runStart += span;
+            currentFNodeIndex = nextFNodeIndex;
+        }
+
+        fnodeTable[lastKeptFNodeIndex].setNext(-1);
+    }
+
+    private int allocateFNode(int blockIndex, int span, int next) throws Exception {
+        int newFNodeIndex = findFreeFNode();
+        if (newFNodeIndex == -1) {
+            throw new Exception("ERROR: file too large (no free FNode)");
+        }
+        fnodeTable[newFNodeIndex].setBlockIndex(blockIndex);
+        fnodeTable[newFNodeIndex].setSpan(span);
+        fnodeTable[newFNodeIndex].setNext(next);
+        return newFNodeIndex;
+    }
+
+    // Makes the chain cover every slot up to lastSlot, by growing the trailing hole
+    // run or appending a new one.
+    private void extendChain(FEntry fileEntry, int lastSlot) throws Exception {
+        int runStart = 0;
+        int lastFNodeIndex = -1;
+        int currentFNodeIndex = fileEntry.getFirstBlock();
+        while (currentFNodeIndex != -1) {
+            runStart += fnodeTable[currentFNodeIndex].getSpan();
+            lastFNodeIndex = currentFNodeIndex;
+            currentFNodeIndex = fnodeTable[currentFNodeIndex].getNext();
+        }
+
+        int missing = lastSlot + 1 - runStart;
+        if (missing <= 0) {
+            return;
+        }
+        FNode lastFNode = fnodeTable[lastFNodeIndex];
+        if (lastFNode.getBlockIndex() == FNode.HOLE) {
+            lastFNode.setSpan(lastFNode.getSpan() + missing);
+        } else {
+            lastFNode.setNext(allocateFNode(FNode.HOLE, missing, -1));
+        }
+    }
+
+    // Returns the node covering the given slot and the slot's offset inside that node,
+    // or null if the chain is shorter.
+    private int[] findSlot(FEntry fileEntry, int slot) {
+        int runStart = 0;
+        int currentFNodeIndex = fileEntry.getFirstBlock();
+        while (currentFNodeIndex != -1) {
+            int span = fnodeTable[currentFNodeIndex].getSpan();
+            if (slot < runStart + span) {
+                return new int[]{currentFNodeIndex, slot - runStart};
+            }
+            runStart += span;
+            currentFNodeIndex = fnodeTable[currentFNodeIndex].getNext();
+        }
+        return null;
+    }
+
+    // Splits one slot out of a hole run so it can get a block of its own, and returns
+    // its node. Nodes with a block already cover a single slot and are returned as is.
+    private int isolateSlot(int fnodeIndex, int offsetInRun) throws Exception {
+        FNode node = fnodeTable[fnodeIndex];
+        if (offsetInRun > 0) {
+            int restFNodeIndex = allocateFNode(FNode.HOLE, node.getSpan() - offsetInRun, node.getNext());
+            node.setSpan(offsetInRun);
+            node.setNext(restFNodeIndex);
+            fnodeIndex = restFNodeIndex;
+            node = fnodeTable[fnodeIndex];
+        }
+        if (node.getSpan() > 1) {
+            int restFNodeIndex = allocateFNode(FNode.HOLE, node.getSpan() - 1, node.getNext());
+            node.setSpan(1);
+            node.setNext(restFNodeIndex);
+        }
+        return fnodeIndex;
+    }
+
+    // Zeroes the bytes after EOF in the file's last block so that extending the
+    // file does not expose what a previous owner left in that block.
+    private void zeroTailOfLastBlock(FEntry fileEntry) throws Exception {
+        int filesize = fileEntry.getFilesize();
+        int tailOffset = filesize % BLOCK_SIZE;
+        if (tailOffset == 0) {
+            return;
+        }
+
+        int[] tail = findSlot(fileEntry, filesize / BLOCK_SIZE);
+        if (tail == null) {
+            return;
+        }
+
+        FNode lastFNode = fnodeTable[tail[0]];
+        int dataBlockIndex = lastFNode.getBlockIndex();
+        if (dataBlockIndex < FIRST_DATA_BLOCK_INDEX) {
+            return;
+        }
+
+        if (needsBlockImage(dataBlockIndex)) {
+            byte[] blockImage = readBlockImage(dataBlockIndex);
+            Arrays.fill(blockImage, tailOffset, BLOCK_SIZE, (byte) 0);
+            lastFNode.setBlockIndex(storeBlockImage(blockImage, dataBlockIndex));
+        } else {
+            saveBlockForRollback(dataBlockIndex);
+            disk.seek(getDiskBlockOffset(dataBlockIndex) + tailOffset);
+            disk.write(new byte[BLOCK_SIZE - tailOffset]);
+        }
+    }
+
+    public void setDeduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+    }
+
+    // Number of FNodes pointing at data blocks; equals getUsedBlockCount() without sharing.
+    public int getReferencedBlockCount() {
+        int referenced = 0;
+        for (int i = FIRST_DATA_BLOCK_INDEX; i < MAXBLOCKS; i++) {
+            if (freeBlockList[i]) {
+                referenced += blockRefCount[i];
+            }
+        }
+        return referenced;
+    }
+
+    public double getDedupRatio() {
+        int used = getUsedBlockCount();
+        return used == 0 ? 1.0 : (double) getReferencedBlockCount() / used;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    // Bytes actually occupied on disk by used blocks, after compression.
+    public long getStoredByteCount() {
+        long stored = 0;
+        for (int i = FIRST_DATA_BLOCK_INDEX; i < MAXBLOCKS; i++) {
+            if (freeBlockList[i]) {
+                stored += blockStoredSize[i];
+            }
+        }
+        return stored;
+    }
+
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    public int getUsedFNodeCount() {
+        return MAXBLOCKS - countFreeFNodes();
+    }
+
+    public int getUsedBlockCount() {
+        int used = 0;
+        for (int i = FIRST_DATA_BLOCK_INDEX; i < MAXBLOCKS; i++) {
+            if (freeBlockList[i]) {
+                used++;
+            }
+        }
+        return used;
+    }
+
     private FEntry findFileEntry(String filename) {
         for (FEntry entry : fentryTable) {
             if (entry != null && entry.getFilename().equals(filename)) {
@@ -90,9 +604,83 @@ public class FileSystemManager {
     }
 
     private void persistMetadata() throws Exception {
+        if (batchOpen) {
+            metadataDirty = true;
+            return;
+        }
+
+    }
+
+    public void setScrubFreedBlocks(boolean scrubFreedBlocks) {
+        this.scrubFreedBlocks = scrubFreedBlocks;
+    }
+
+    // Zeroes blocks freed since the last scrub. Caller must hold the write lock.
+    public int scrubFreeBlocks() throws Exception {
+        byte[] zeroes = new byte[BLOCK_SIZE];
+        int scrubbed = 0;
+        for (int i = FIRST_DATA_BLOCK_INDEX; i < MAXBLOCKS; i++) {
+            if (scrubPending[i] && !freeBlockList[i]) {
+                disk.seek(getDiskBlockOffset(i));
+                disk.write(zeroes);
+                scrubbed++;
+            }
+            scrubPending[i] = false;
+        }
+        return scrubbed;
+    }
 
+    public void beginBatch() throws Exception {
+        if (batchOpen) {
+            throw new Exception("ERROR: batch already in progress");
+        }
+        batchOpen = true;
+        metadataDirty = false;
+        batchSnapshot = new BatchSnapshot();
     }
 
+    public void commitBatch() throws Exception {
+        if (!batchOpen) {
+            throw new Exception("ERROR: no batch in progress");
+        }
+        batchOpen = false;
+        batchSnapshot = null;
+        if (metadataDirty) {
+            metadataDirty = false;
+            persistMetadata();
+        }
+    }
+
+    // Puts the tables and every block the batch wrote back the way they were at
+    // beginBatch(), and closes the batch without committing anything.
+    public void rollbackBatch() throws Exception {
+        if (!batchOpen) {
+            throw new Exception("ERROR: no batch in progress");
+        }
+        BatchSnapshot snapshot = batchSnapshot;
+        batchOpen = false;
+        batchSnapshot = null;
+        metadataDirty = false;
+
+        for (Map.Entry<Integer, byte[]> block : snapshot.originalBlocks.entrySet()) {
+            disk.seek(getDiskBlockOffset(block.getKey()));
+            disk.write(block.getValue());
+        }
+        snapshot.restore();
+    }
+
+    // Keeps the bytes a block had before the open batch first writes to it.
+    private void saveBlockForRollback(int dataBlockIndex) throws Exception {
+        if (!batchOpen || batchSnapshot.originalBlocks.containsKey(dataBlockIndex)) {
+            return;
+        }
+        byte[] original = new byte[BLOCK_SIZE];
+        disk.seek(getDiskBlockOffset(dataBlockIndex));
+        disk.readFully(original);
+        batchSnapshot.originalBlocks.put(dataBlockIndex, original);
+    }
+
+
     
 
     public void createFile(String filename) throws Exception {
@@ -124,7 +712,7 @@ public class FileSystemManager {
         }
 
      
-        fnodeTable[fnodeIndex].setBlockIndex(-1);
+        fnodeTable[fnodeIndex].setBlockIndex(FNode.HOLE);
         fnodeTable[fnodeIndex].setNext(-1);
 
         
@@ -150,18 +738,11 @@ public class FileSystemManager {
             int nextFNodeIndex = currentFNode.getNext();
             int dataBlockIndex = currentFNode.getBlockIndex();
 
-            if (dataBlockIndex >= FIRST_DATA_BLOCK_INDEX && dataBlockIndex < MAXBLOCKS) {
-                
-                disk.seek(getDiskBlockOffset(dataBlockIndex));
-                byte[] zeroes = new byte[BLOCK_SIZE];
-                disk.write(zeroes);
-
-            
-                freeBlockList[dataBlockIndex] = false;
-            }
+            releaseDataBlock(dataBlockIndex);
 
             
             currentFNode.setBlockIndex(-1);
+            currentFNode.setSpan(1);
             currentFNode.setNext(-1);
 
             currentFNodeIndex = nextFNodeIndex;
@@ -215,51 +796,78 @@ public class FileSystemManager {
         byte[] resultBuffer = new byte[actualReadLength];
         int currentReadOffset = 0;
 
-        int blocksToSkip = offset / BLOCK_SIZE;
+        int slot = offset / BLOCK_SIZE;
         int startBlockOffset = offset % BLOCK_SIZE;
-        int currentFNodeIndex = fileEntry.getFirstBlock();
 
-       
-        if (currentFNodeIndex < 0 || fnodeTable[currentFNodeIndex].getBlockIndex() < 0) {
-            return new byte[0];
-        }
-
-       
-        for (int i = 0; i < blocksToSkip; i++) {
-            if (currentFNodeIndex == -1) {
-                throw new Exception("ERROR: File is shorter than reported filesize/offset");
-            }
-            currentFNodeIndex = fnodeTable[currentFNodeIndex].getNext();
+        int[] start = findSlot(fileEntry, slot);
+        if (start == null) {
+            throw new Exception("ERROR: File is shorter than reported filesize/offset");
         }
+        int currentFNodeIndex = start[0];
+        int slotInRun = start[1];
 
         int bytesRemainingToRead = actualReadLength;
+        // Scratch space for compressed blocks, per call since reads run concurrently.
+        byte[] storedBuffer = null;
+        byte[] blockImage = null;
 
         while (bytesRemainingToRead > 0 && currentFNodeIndex != -1) {
             FNode currentFNode = fnodeTable[currentFNodeIndex];
             int dataBlockIndex = currentFNode.getBlockIndex();
+            int readSize;
+            int bytesRead;
+
+            if (dataBlockIndex == FNode.HOLE) {
+                // Holes have no block on disk; resultBuffer is already zero-filled.
+                int bytesInRun = (currentFNode.getSpan() - slotInRun) * BLOCK_SIZE - startBlockOffset;
+                readSize = Math.min(bytesRemainingToRead, bytesInRun);
+                bytesRead = readSize;
+            } else {
+                if (dataBlockIndex < FIRST_DATA_BLOCK_INDEX) {
+                    throw new Exception("ERROR: FNode chain corruption detected while reading");
+                }
 
-            if (dataBlockIndex < FIRST_DATA_BLOCK_INDEX) {
-                throw new Exception("ERROR: FNode chain corruption detected while reading");
-            }
-
-            int bytesInCurrentBlock = BLOCK_SIZE - startBlockOffset;
-            int readSize = Math.min(bytesRemainingToRead, bytesInCurrentBlock);
+                readSize = Math.min(bytesRemainingToRead, BLOCK_SIZE - startBlockOffset);
+
+                if (isCompressed(dataBlockIndex)) {
+                    // Whole blocks decompress straight into the result; partial ones go
+                    // through a buffer kept for the rest of this read.
+                    if (storedBuffer == null) {
+                        storedBuffer = new byte[BLOCK_SIZE];
+                    }
+                    int storedSize = blockStoredSize[dataBlockIndex];
+                    disk.seek(getDiskBlockOffset(dataBlockIndex));
+                    disk.readFully(storedBuffer, 0, storedSize);
+
+                    if (readSize == BLOCK_SIZE) {
+                        Lz4Codec.decompress(storedBuffer, storedSize, resultBuffer, currentReadOffset, BLOCK_SIZE);
+                    } else {
+                        if (blockImage == null) {
+                            blockImage = new byte[BLOCK_SIZE];
+                        }
+                        Lz4Codec.decompress(storedBuffer, storedSize, blockImage, 0, BLOCK_SIZE);
+                        System.arraycopy(blockImage, startBlockOffset, resultBuffer, currentReadOffset, readSize);
+                    }
+                    bytesRead = readSize;
+                } else {
+                    byte[] blockData = new byte[readSize];
 
-            byte[] blockData = new byte[readSize];
+                    long position = getDiskBlockOffset(dataBlockIndex) + startBlockOffset;
+                    disk.seek(position);
+                    bytesRead = disk.read(blockData, 0, readSize);
 
-            long position = getDiskBlockOffset(dataBlockIndex) + startBlockOffset;
-            disk.seek(position);
-            int bytesRead = disk.read(blockData, 0, readSize);
+                    if (bytesRead == -1) {
+                        bytesRead = 0;
+                    }
 
-            if (bytesRead == -1) {
-                bytesRead = 0;
+                    System.arraycopy(blockData, 0, resultBuffer, currentReadOffset, bytesRead);
+                }
             }
 
-            System.arraycopy(blockData, 0, resultBuffer, currentReadOffset, bytesRead);
-
             bytesRemainingToRead -= bytesRead;
             currentReadOffset += bytesRead;
             startBlockOffset = 0;
+            slotInRun = 0;
 
          
             if (bytesRead < readSize) {
@@ -302,83 +910,88 @@ public class FileSystemManager {
             throw new Exception("ERROR: file " + filename + " does not exist");
         }
 
-        if (offset < 0 || offset > fileEntry.getFilesize()) {
-            throw new Exception("ERROR: Invalid offset for writing (offset must be <= filesize)");
-        }
+        writeData(fileEntry, data, offset);
 
-        int bytesToWrite = data.length;
-        int blocksToSkip = offset / BLOCK_SIZE;
-        int startBlockOffset = offset % BLOCK_SIZE;
-        int currentFNodeIndex = fileEntry.getFirstBlock();
+        persistMetadata();
+        System.out.println("SUCCESS: Wrote " + data.length + " bytes to file '" + filename +
+                "'. New size: " + fileEntry.getFilesize() + " bytes.");
+    }
 
-      
-        for (int i = 0; i < blocksToSkip; i++) {
-            if (currentFNodeIndex == -1) {
-                throw new Exception("ERROR: File corruption during write offset calculation.");
-            }
-            currentFNodeIndex = fnodeTable[currentFNodeIndex].getNext();
-        }
+    // Throws without changing the file if the data does not fit.
+    private void writeData(FEntry fileEntry, byte[] data, int offset) throws Exception {
+        if (data.length == 0) return;
 
-       
-        if (fileEntry.getFilesize() == 0 && offset == 0) {
-            int dataBlockIndex = findFreeDataBlock();
-            if (dataBlockIndex == -1) {
-                throw new Exception("ERROR: file too large (no free blocks)");
-            }
-            fnodeTable[currentFNodeIndex].setBlockIndex(dataBlockIndex);
+        if (offset < 0) {
+            throw new Exception("ERROR: Invalid offset for writing");
+        }
+        if ((long) offset + data.length > Short.MAX_VALUE) {
+            throw new Exception("ERROR: file too large (max " + Short.MAX_VALUE + " bytes)");
         }
 
-        int dataBufferIndex = 0;
-        int lastFNodeIndex = (blocksToSkip > 0) ? currentFNodeIndex : -1;
-
-        while (bytesToWrite > 0) {
-
-            if (currentFNodeIndex == -1) {
-                int newFNodeIndex = findFreeFNode();
-                int newDataBlockIndex = findFreeDataBlock();
+        if (offset + data.length > fileEntry.getFilesize()) {
+            trimPastEof(fileEntry);
+        }
+        checkWriteCapacity(fileEntry, offset, data);
 
-                if (newFNodeIndex == -1 || newDataBlockIndex == -1) {
-                    throw new Exception("ERROR: file too large (no free FNode or data block)");
-                }
+        // Writing past EOF leaves a hole: the skipped slots become one hole run in the
+        // chain, with no data block.
+        if (offset > fileEntry.getFilesize()) {
+            zeroTailOfLastBlock(fileEntry);
+        }
 
-                if (lastFNodeIndex != -1) {
-                    fnodeTable[lastFNodeIndex].setNext(newFNodeIndex);
+        try {
+            int bytesToWrite = data.length;
+            int firstSlot = offset / BLOCK_SIZE;
+            int startBlockOffset = offset % BLOCK_SIZE;
+
+            extendChain(fileEntry, (offset + data.length - 1) / BLOCK_SIZE);
+            int[] start = findSlot(fileEntry, firstSlot);
+            int currentFNodeIndex = isolateSlot(start[0], start[1]);
+
+            int dataBufferIndex = 0;
+
+            while (bytesToWrite > 0) {
+                FNode currentFNode = fnodeTable[currentFNodeIndex];
+                int dataBlockIndex = currentFNode.getBlockIndex();
+
+                int bytesInCurrentBlock = BLOCK_SIZE - startBlockOffset;
+                int writeSize = Math.min(bytesToWrite, bytesInCurrentBlock);
+
+                if (needsBlockImage(dataBlockIndex)) {
+                    byte[] blockImage;
+                    if (writeSize == BLOCK_SIZE) {
+                        // The whole block is replaced; its old contents are not needed.
+                        blockImage = Arrays.copyOfRange(data, dataBufferIndex, dataBufferIndex + BLOCK_SIZE);
+                    } else {
+                        blockImage = readBlockImage(dataBlockIndex);
+                        System.arraycopy(data, dataBufferIndex, blockImage, startBlockOffset, writeSize);
+                    }
+                    currentFNode.setBlockIndex(storeBlockImage(blockImage, dataBlockIndex));
                 } else {
-                    
+                    saveBlockForRollback(dataBlockIndex);
+                    long position = getDiskBlockOffset(dataBlockIndex) + startBlockOffset;
+                    disk.seek(position);
+                    disk.write(data, dataBufferIndex, writeSize);
                 }
 
-                fnodeTable[newFNodeIndex].setBlockIndex(newDataBlockIndex);
-                fnodeTable[newFNodeIndex].setNext(-1);
-
-                currentFNodeIndex = newFNodeIndex;
+                bytesToWrite -= writeSize;
+                dataBufferIndex += writeSize;
                 startBlockOffset = 0;
-            }
-
-            FNode currentFNode = fnodeTable[currentFNodeIndex];
-            int dataBlockIndex = currentFNode.getBlockIndex();
-
-            int bytesInCurrentBlock = BLOCK_SIZE - startBlockOffset;
-            int writeSize = Math.min(bytesToWrite, bytesInCurrentBlock);
-
-            long position = getDiskBlockOffset(dataBlockIndex) + startBlockOffset;
-            disk.seek(position);
-            disk.write(data, dataBufferIndex, writeSize);
 
-            bytesToWrite -= writeSize;
-            dataBufferIndex += writeSize;
-            lastFNodeIndex = currentFNodeIndex;
-            startBlockOffset = 0;
-            currentFNodeIndex = currentFNode.getNext();
+                if (bytesToWrite > 0) {
+                    currentFNodeIndex = isolateSlot(currentFNode.getNext(), 0);
+                }
+            }
+        } catch (Exception e) {
+            // Give back FNodes and blocks appended past EOF before the failure.
+            trimPastEof(fileEntry);
+            throw e;
         }
 
         int newFilesize = offset + data.length;
         if (newFilesize > fileEntry.getFilesize()) {
             fileEntry.setFilesize((short) newFilesize);
         }
-
-        persistMetadata();
-        System.out.println("SUCCESS: Wrote " + data.length + " bytes to file '" + filename +
-                "'. New size: " + fileEntry.getFilesize() + " bytes.");
     }
 
     
@@ -389,31 +1002,60 @@ public class FileSystemManager {
             throw new Exception("ERROR: file " + filename + " does not exist");
         }
 
-        
-        int headNodeIndex = fileEntry.getFirstBlock();
-        int current = headNodeIndex;
-        while (current != -1) {
-            FNode node = fnodeTable[current];
-            int dataBlockIndex = node.getBlockIndex();
+        // Overwrite the existing blocks first and only then cut the file down, so
+        // contents that do not fit are rejected while the old data is still intact.
+        // The last block is zero-padded so no old bytes are left behind in it.
+        int paddedLength = Math.min((contents.length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE,
+                Short.MAX_VALUE);
+        writeData(fileEntry, Arrays.copyOf(contents, Math.max(paddedLength, contents.length)), 0);
 
-            if (dataBlockIndex >= FIRST_DATA_BLOCK_INDEX && dataBlockIndex < MAXBLOCKS) {
-                
-                disk.seek(getDiskBlockOffset(dataBlockIndex));
-                byte[] zeroes = new byte[BLOCK_SIZE];
-                disk.write(zeroes);
-                freeBlockList[dataBlockIndex] = false;
-            }
+        fileEntry.setFilesize((short) contents.length);
+        trimPastEof(fileEntry);
 
-            int next = node.getNext();
-            node.setBlockIndex(-1);
-            node.setNext(-1);
-            current = next;
-        }
+        persistMetadata();
+        System.out.println("SUCCESS: Wrote " + contents.length + " bytes to file '" + filename +
+                "'. New size: " + fileEntry.getFilesize() + " bytes.");
+    }
 
-       
-        fileEntry.setFilesize((short) 0);
+    // Copy of the in-memory state taken when a batch begins.
+    private class BatchSnapshot {
+        private final FEntry[] fentries = new FEntry[fentryTable.length];
+        private final FNode[] fnodes = new FNode[fnodeTable.length];
+        private final boolean[] freeBlocks = freeBlockList.clone();
+        private final boolean[] scrub = scrubPending.clone();
+        private final int[] refCounts = blockRefCount.clone();
+        private final Map<Long, List<Integer>> fingerprints = new HashMap<>();
+        private final long[] fingerprintOfBlock = blockFingerprint.clone();
+        private final boolean[] indexed = blockIndexed.clone();
+        private final int[] storedSizes = blockStoredSize.clone();
+        private final Map<Integer, byte[]> originalBlocks = new HashMap<>();
+
+        BatchSnapshot() {
+            for (int i = 0; i < fentries.length; i++) {
+                FEntry entry = fentryTable[i];
+                if (entry != null) {
+                    fentries[i] = new FEntry(entry.getFilename(), entry.getFilesize(), entry.getFirstBlock());
+                }
+            }
+            for (int i = 0; i < fnodes.length; i++) {
+                FNode node = fnodeTable[i];
+                fnodes[i] = new FNode(node.getBlockIndex(), node.getNext(), node.getSpan());
+            }
+            for (Map.Entry<Long, List<Integer>> entry : fingerprintIndex.entrySet()) {
+                fingerprints.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+        }
 
-      
-        write(filename, contents, 0);
+        void restore() {
+            fentryTable = fentries;
+            fnodeTable = fnodes;
+            freeBlockList = freeBlocks;
+            scrubPending = scrub;
+            blockRefCount = refCounts;
+            fingerprintIndex = fingerprints;
+            blockFingerprint = fingerprintOfBlock;
+            blockIndexed = indexed;
+            blockStoredSize = storedSizes;
+        }
     }
 }
@@ -0,0 +1,193 @@
+package ca.concordia.filesystem.compression;
+
+import java.util.Arrays;
+
+/**
+ * Minimal LZ4 block-format codec (no frame header, no checksums).
+ * The compressor is the greedy single-probe hash variant of the reference
+ * implementation, which favours speed over ratio.
+ */
+public final class Lz4Codec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int MAX_HASH_LOG = 12;
+
+    private Lz4Codec() {
+    }
+
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    public static byte[] compress(byte[] src) {
+        int srcLen = src.length;
+        byte[] dst = new byte[maxCompressedLength(srcLen)];
+        int dp = 0;
+        int anchor = 0;
+
+        // The format requires the last 5 bytes to be literals and the last match to
+        // start at least 12 bytes before the end; shorter inputs are all literals.
+        if (srcLen > MF_LIMIT) {
+            // Small blocks get a small table; clearing 4096 slots would cost more than the block.
+            int hashLog = Math.min(MAX_HASH_LOG, 32 - Integer.numberOfLeadingZeros(srcLen - 1));
+            int[] table = new int[1 << hashLog];
+            Arrays.fill(table, -1);
+
+            int matchLimit = srcLen - LAST_LITERALS;
+            int sp = 0;
+
+            while (sp <= srcLen - MF_LIMIT) {
+                int sequence = readInt(src, sp);
+                int h = hash(sequence, hashLog);
+                int ref = table[h];
+                table[h] = sp;
+
+                if (ref < 0 || sp - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    sp++;
+                    continue;
+                }
+
+                while (sp > anchor && ref > 0 && src[sp - 1] == src[ref - 1]) {
+                    sp--;
+                    ref--;
+                }
+
+                int matchLen = MIN_MATCH;
+                while (sp + matchLen < matchLimit && src[sp + matchLen] == src[ref + matchLen]) {
+                    matchLen++;
+                }
+
+                dp = writeSequence(dst, dp, src, anchor, sp - anchor, sp - ref, matchLen);
+                sp += matchLen;
+                anchor = sp;
+            }
+        }
+
+        dp = writeSequence(dst, dp, src, anchor, srcLen - anchor, 0, 0);
+
+        byte[] result = new byte[dp];
+        System.arraycopy(dst, 0, result, 0, dp);
+        return result;
+    }
+
+    public static byte[] decompress(byte[] src, int srcLen, int originalLength) {
+        byte[] dst = new byte[originalLength];
+        decompress(src, srcLen, dst, 0, originalLength);
+        return dst;
+    }
+
+    /**
+     * Decompresses into dst[dstOff, dstOff + originalLength), so callers can fill
+     * a larger buffer without an intermediate copy.
+     */
+    public static void decompress(byte[] src, int srcLen, byte[] dst, int dstOff, int originalLength) {
+        int dstEnd = dstOff + originalLength;
+        int sp = 0;
+        int dp = dstOff;
+
+        try {
+            while (sp < srcLen) {
+                int token = src[sp++] & 0xff;
+
+                int literalLen = token >>> 4;
+                if (literalLen == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        literalLen += b;
+                    } while (b == 255);
+                }
+                if (dp + literalLen > dstEnd || sp + literalLen > srcLen) {
+                    throw new IllegalArgumentException("Corrupt LZ4 block: bad literals at " + sp);
+                }
+                System.arraycopy(src, sp, dst, dp, literalLen);
+                sp += literalLen;
+                dp += literalLen;
+
+                if (sp >= srcLen) {
+                    break;
+                }
+
+                int offset = (src[sp++] & 0xff) | ((src[sp++] & 0xff) << 8);
+                int matchLen = token & 0x0f;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+
+                int ref = dp - offset;
+                if (offset == 0 || ref < dstOff || dp + matchLen > dstEnd) {
+                    throw new IllegalArgumentException("Corrupt LZ4 block: bad match at " + sp);
+                }
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, dp, matchLen);
+                    dp += matchLen;
+                } else {
+                    // Byte by byte, since the match overlaps the bytes it produces.
+                    for (int i = 0; i < matchLen; i++) {
+                        dst[dp++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupt LZ4 block: truncated input", e);
+        }
+
+        if (dp != dstEnd) {
+            throw new IllegalArgumentException("Corrupt LZ4 block: expected " + originalLength +
+                    " bytes but got " + (dp - dstOff));
+        }
+    }
+
+    private static int writeSequence(byte[] dst, int dp, byte[] src, int literalStart, int literalLen,
+                                     int offset, int matchLen) {
+        int tokenPos = dp++;
+        int token = Math.min(literalLen, 15) << 4;
+        if (literalLen >= 15) {
+            dp = writeLength(dst, dp, literalLen - 15);
+        }
+        System.arraycopy(src, literalStart, dst, dp, literalLen);
+        dp += literalLen;
+
+        if (matchLen > 0) {
+            dst[dp++] = (byte) offset;
+            dst[dp++] = (byte) (offset >>> 8);
+
+            int extraMatchLen = matchLen - MIN_MATCH;
+            token |= Math.min(extraMatchLen, 15);
+            if (extraMatchLen >= 15) {
+                dp = writeLength(dst, dp, extraMatchLen - 15);
+            }
+        }
+
+        dst[tokenPos] = (byte) token;
+        return dp;
+    }
+
+    private static int writeLength(byte[] dst, int dp, int length) {
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    private static int readInt(byte[] src, int pos) {
+        return (src[pos] & 0xff)
+                | (src[pos + 1] & 0xff) << 8
+                | (src[pos + 2] & 0xff) << 16
+                | (src[pos + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int sequence, int hashLog) {
+        return (sequence * -1640531535) >>> (32 - hashLog);
+    }
+}
@@ -2,18 +2,30 @@ package ca.concordia.filesystem.datastructures;
 
 public class FNode {
 
+    // blockIndex of a node that belongs to a file but has no data block yet (a sparse hole).
+    public static final int HOLE = -2;
+
     private int blockIndex;
     private int next;
+    // Number of consecutive block-sized slots of the file this node covers. Always 1
+    // for a node with a data block; a hole covers a whole run of empty slots.
+    private int span;
 
     public FNode(int blockIndex, int next) {
+        this(blockIndex, next, 1);
+    }
+
+    public FNode(int blockIndex, int next, int span) {
         this.blockIndex = blockIndex;
         this.next = next;
+        this.span = span;
     }
     
     
     public FNode() {
         this.blockIndex = -1;
         this.next = -1;
+        this.span = 1;
     }
 
    
@@ -32,4 +44,15 @@ public class FNode {
     public void setNext(int next) {
         this.next = next;
     }
+
+    public int getSpan() {
+        return span;
+    }
+
+    public void setSpan(int span) {
+        if (span < 1) {
+            throw new IllegalArgumentException("FNode span must be at least 1.");
+        }
+        this.span = span;
+    }
 }
\ No newline at end of file
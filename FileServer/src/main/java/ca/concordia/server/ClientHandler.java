@@ -5,6 +5,8 @@ import ca.concordia.filesystem.FileSystemManager;
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -15,6 +17,9 @@ public class ClientHandler implements Runnable {
     private final Lock readLock;
     private final Lock writeLock;
 
+    // Non-null while the client is inside a MULTI ... EXEC block.
+    private List<String[]> queuedOperations;
+
     public ClientHandler(Socket clientSocket,
                          FileSystemManager fsManager,
                          ReentrantReadWriteLock rwLock) {
@@ -65,48 +70,21 @@ public class ClientHandler implements Runnable {
             String[] parts = line.split(" ", 3);
             String command = parts[0].toUpperCase();
 
-            switch (command) {
-                case "CREATE": {
-                    if (parts.length < 2) return "ERROR: usage: CREATE <filename>";
-                    String filename = parts[1];
-
-                    writeLock.lock();
-                    try {
-                        fsManager.createFile(filename);
-                    } finally {
-                        writeLock.unlock();
-                    }
-                    return "OK: file " + filename + " created";
-                }
-
-                case "DELETE": {
-                    if (parts.length < 2) return "ERROR: usage: DELETE <filename>";
-                    String filename = parts[1];
-
-                    writeLock.lock();
-                    try {
-                        fsManager.deleteFile(filename);
-                    } finally {
-                        writeLock.unlock();
-                    }
-                    return "OK: file " + filename + " deleted";
-                }
-
-                case "WRITE": {
-                    if (parts.length < 3) return "ERROR: usage: WRITE <filename> <content>";
-                    String filename = parts[1];
-                    String content = parts[2];
-
-                    byte[] data = content.getBytes(StandardCharsets.UTF_8);
+            if (queuedOperations != null) {
+                return handleQueuedCommand(command, parts);
+            }
 
+            switch (command) {
+                case "CREATE":
+                case "DELETE":
+                case "WRITE":
+                case "WRITEAT": {
                     writeLock.lock();
                     try {
-                        fsManager.writeFile(filename, data);
+                        return applyUpdate(command, parts);
                     } finally {
                         writeLock.unlock();
                     }
-
-                    return "OK: wrote " + data.length + " bytes to " + filename;
                 }
 
                 case "READ": {
@@ -141,13 +119,167 @@ public class ClientHandler implements Runnable {
                     return String.join(",", files);
                 }
 
+                case "STATS": {
+                    int usedBlocks;
+                    int referencedBlocks;
+                    double dedupRatio;
+                    long storedBytes;
+                    int blockSize;
+                    readLock.lock();
+                    try {
+                        usedBlocks = fsManager.getUsedBlockCount();
+                        referencedBlocks = fsManager.getReferencedBlockCount();
+                        dedupRatio = fsManager.getDedupRatio();
+                        storedBytes = fsManager.getStoredByteCount();
+                        blockSize = fsManager.getBlockSize();
+                    } finally {
+                        readLock.unlock();
+                    }
+
+                    return String.format("OK: %d blocks used, %d block references, dedup ratio %.2f, " +
+                                    "%d of %d block bytes stored after compression",
+                            usedBlocks, referencedBlocks, dedupRatio, storedBytes, (long) usedBlocks * blockSize);
+                }
+
+                case "MULTI": {
+                    queuedOperations = new ArrayList<>();
+                    return "OK: batch started";
+                }
+
+                case "EXEC":
+                case "DISCARD":
+                    return "ERROR: " + command + " without MULTI";
+
                 default:
                     return "ERROR: unknown command";
             }
         } catch (Exception e) {
-            
-            String msg = e.getMessage();
-            return (msg != null && !msg.isEmpty()) ? msg : "ERROR: " + e;
+            return errorMessage(e);
         }
     }
+
+    // Inside MULTI, updates are queued until EXEC runs them all under a single write lock.
+    private String handleQueuedCommand(String command, String[] parts) throws Exception {
+        switch (command) {
+            case "CREATE":
+            case "DELETE":
+            case "WRITE":
+            case "WRITEAT": {
+                queuedOperations.add(parts);
+                return "OK: queued " + command + " (" + queuedOperations.size() + " in batch)";
+            }
+
+            case "EXEC": {
+                List<String[]> operations = queuedOperations;
+                queuedOperations = null;
+                return executeBatch(operations);
+            }
+
+            case "DISCARD": {
+                int discarded = queuedOperations.size();
+                queuedOperations = null;
+                return "OK: discarded " + discarded + " queued operations";
+            }
+
+            case "MULTI":
+                return "ERROR: batch already started";
+
+            default:
+                return "ERROR: only CREATE, WRITE, WRITEAT and DELETE can be batched";
+        }
+    }
+
+    private String executeBatch(List<String[]> operations) throws Exception {
+        if (operations.isEmpty()) {
+            return "OK: empty batch";
+        }
+
+        // All or nothing: the first failed operation rolls back the ones before it.
+        List<String> results = new ArrayList<>();
+        int failedAt = -1;
+        writeLock.lock();
+        try {
+            fsManager.beginBatch();
+            for (String[] parts : operations) {
+                String command = parts[0].toUpperCase();
+                try {
+                    results.add(applyUpdate(command, parts));
+                } catch (Exception e) {
+                    results.add(errorMessage(e));
+                    failedAt = results.size();
+                    break;
+                }
+            }
+
+            if (failedAt != -1) {
+                fsManager.rollbackBatch();
+            } else {
+                fsManager.commitBatch();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+
+        if (failedAt != -1) {
+            return "ERROR: batch aborted at operation " + failedAt + " of " + operations.size() +
+                    ", no changes applied: " + results.get(failedAt - 1);
+        }
+        return "OK: executed " + operations.size() + " operations: " + String.join(" | ", results);
+    }
+
+    // Caller must hold the write lock.
+    private String applyUpdate(String command, String[] parts) throws Exception {
+        switch (command) {
+            case "CREATE": {
+                if (parts.length < 2) throw new Exception("ERROR: usage: CREATE <filename>");
+                String filename = parts[1];
+
+                fsManager.createFile(filename);
+                return "OK: file " + filename + " created";
+            }
+
+            case "DELETE": {
+                if (parts.length < 2) throw new Exception("ERROR: usage: DELETE <filename>");
+                String filename = parts[1];
+
+                fsManager.deleteFile(filename);
+                return "OK: file " + filename + " deleted";
+            }
+
+            case "WRITE": {
+                if (parts.length < 3) throw new Exception("ERROR: usage: WRITE <filename> <content>");
+                String filename = parts[1];
+                String content = parts[2];
+
+                byte[] data = content.getBytes(StandardCharsets.UTF_8);
+                fsManager.writeFile(filename, data);
+                return "OK: wrote " + data.length + " bytes to " + filename;
+            }
+
+            case "WRITEAT": {
+                String[] args = parts.length < 3 ? new String[0] : parts[2].split(" ", 2);
+                if (args.length < 2) throw new Exception("ERROR: usage: WRITEAT <filename> <offset> <content>");
+                String filename = parts[1];
+
+                int offset;
+                try {
+                    offset = Integer.parseInt(args[0]);
+                } catch (NumberFormatException e) {
+                    throw new Exception("ERROR: offset must be a number");
+                }
+
+                byte[] data = args[1].getBytes(StandardCharsets.UTF_8);
+                fsManager.write(filename, data, offset);
+                return "OK: wrote " + data.length + " bytes to " + filename + " at offset " + offset;
+            }
+
+            default:
+                throw new Exception("ERROR: unknown command");
+        }
+    }
+
+    private static String errorMessage(Exception e) {
+        String msg = e.getMessage();
+        return (msg != null && !msg.isEmpty()) ? msg : "ERROR: " + e;
+    }
 }
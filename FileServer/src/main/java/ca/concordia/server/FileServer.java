@@ -18,9 +18,20 @@ public class FileServer {
         int port = 8080;
         String fileSystemName = "server_filesystem.bin";
         int totalSize = 10 * 128; 
+        // Zeroing of freed blocks is off unless an interval is given, e.g. -Dfileserver.scrubIntervalMs=5000
+        long scrubIntervalMs = Long.getLong("fileserver.scrubIntervalMs", 0L);
+        // Block deduplication is off unless -Dfileserver.dedup=true
+        boolean deduplication = Boolean.getBoolean("fileserver.dedup");
+        // Per-block LZ4 compression is off unless -Dfileserver.compression=true
+        boolean compression = Boolean.getBoolean("fileserver.compression");
 
         try {
             FileServer server = new FileServer(port, fileSystemName, totalSize);
+            server.setDeduplication(deduplication);
+            server.setCompression(compression);
+            if (scrubIntervalMs > 0) {
+                server.startScrubber(scrubIntervalMs);
+            }
             server.start();
         } catch (Exception e) {
             System.err.println("Fatal error during server startup: " + e.getMessage());
@@ -33,6 +44,52 @@ public class FileServer {
         this.port = port;
     }
 
+    public void setDeduplication(boolean deduplication) {
+        rwLock.writeLock().lock();
+        try {
+            fsManager.setDeduplication(deduplication);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    public void setCompression(boolean compression) {
+        rwLock.writeLock().lock();
+        try {
+            fsManager.setCompression(compression);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    public void startScrubber(long intervalMs) {
+        fsManager.setScrubFreedBlocks(true);
+
+        Thread scrubber = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                rwLock.writeLock().lock();
+                try {
+                    int scrubbed = fsManager.scrubFreeBlocks();
+                    if (scrubbed > 0) {
+                        System.out.println("Scrubber zeroed " + scrubbed + " freed blocks");
+                    }
+                } catch (Exception e) {
+                    System.err.println("Scrubber error: " + e.getMessage());
+                } finally {
+                    rwLock.writeLock().unlock();
+                }
+            }
+        }, "block-scrubber");
+        scrubber.setDaemon(true);
+        scrubber.start();
+    }
+
     public void start() {
         if (fsManager == null) {
             System.err.println("Server cannot start. FSM initialization failed.");